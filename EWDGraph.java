@@ -35,7 +35,11 @@ import java.util.Map;
  * nothing changes. Method removeEWDGraphVertex(V vertexData) removes Vertex
  * with value vertexData if it is in the graph and returns true. It also removes
  * every outgoing and incoming edge from the vertex. If there is no vertex with
- * value vertexData then false is returned and nothing changes. Method 
+ * value vertexData then false is returned and nothing changes. Method
+ * removeEWDGraphVertex(V vertexData, Collection<V> sources) does the same but
+ * only removes incoming edges from the vertices in sources instead of
+ * checking every vertex in the graph, so it should only be used when the
+ * caller knows every vertex with an edge to vertexData. Method 
  * getNeighborsOfVertex(V vertexData) returns a Collection of every neighbor
  * of vertex with value vertexData if it is in the graph, otherwise it returns
  * null. Method consolidateVertices(V vertex1, V vertex2) combines vertices
@@ -241,6 +245,37 @@ public class EWDGraph<V> {
         return result;
     }
 
+    // This method removes the vertex with the parameter value from the graph
+    // like the method above, but it only removes the incoming edges that come
+    // from the vertices in sources instead of looking at every vertex in the
+    // graph. It is meant for graphs where the caller knows every vertex with
+    // an edge to vertexData, like a graph where every edge has an edge in the
+    // opposite direction, so sources can be the vertex's own neighbors. Returns
+    // true if successful and false if the vertex isn't in the graph.
+    public boolean removeEWDGraphVertex(V vertexData, Collection<V> sources) {
+        if (vertexData == null || sources == null) {
+            throw new IllegalArgumentException();
+        }
+
+        boolean result = false;
+
+        if (graph.containsKey(vertexData)) {
+            // removes the vertex from the graph
+            graph.remove(vertexData);
+
+            // removes the incoming edges from the given vertices only
+            for (V val : sources) {
+                if (graph.containsKey(val)) {
+                    graph.get(val).remove(vertexData);
+                }
+            }
+
+            result = true;
+        }
+
+        return result;
+    }
+
     // This method returns a collection of all neighbors of the vertex with
     // the parameter value in the graph. If this vertex is not in the graph,
     // null is returned. By neighbors this means any outgoing edges.
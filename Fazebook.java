@@ -1,62 +1,113 @@
 package fazebook;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
 
 /*
  * This class represents a pseudo social media platform named Fazebook. It has
  * a comparator field used to initialize its EWDGraph field that is used to
- * represent the platforms and finally it has an Object field that acts as a
- * lock for the threads in the readSocialNetworkData() method. Any null 
- * parameters will result in false or null being returned. The addUser()
- * method adds a user without friends to the platform. If there is already a
- * user with the parameter name or if the parameter name is empty it just 
- * returns false without changing anything. The getAllUsers() method returns
- * a collection of all the current users of the platform. The addFriends()
- * method takes two userNames as parameters and returns true if they
- * successfully become friends. If the names are invalid false will be returned.
- * If either user is not a current user, it will add them to the platform and
- * then make them friends. If they're already friends or if someone tries 
- * to create a friendship themselves by putting two identical names as 
- * parameters false is returned. The getFriends() method takes a user name as
- * a parameter and returns a Collection of that user's friends. If the user
- * has no friends, or isn't on the platform an empty Collection is returned. The
- * unfriend() method takes two user names as parameters and removes the
- * friendship between them. If either of the parameter users isn't on the 
- * platform, or if they are on the platform but aren't friends, false is 
- * returned and nothing changes. The peopleYouMayWannaKnow() method takes a user
- * name as a parameter and returns a Collection of names of friends of that 
- * user's friends. The collection will not include any names of people the user
- * is already friends with or the user himself. If the parameter user isn't on
- * the platform an empty Collection is returned. This is also returned if the
- * user is on the platform but doesn't have any friends or his friends don't
- * have friends. Finally the readSocialNetworkData() method uses an inner
- * MyThread class to pass the name of one file from the parameter Collection
- * and have the thread read it and change the platform based on the file's
- * contents. Each thread reads a file using a Scanner and either adds a user or
- * a friendship based on the contents of the file. The method will join all the
- * threads (wait for them to finish) to ensure that when the method call is
- * over no more changes happen to the current Fazebook object. This way another
- * method can be called after readSocialNetworkData() without us having to 
- * worry that the new method is dealing with an unfinished current object. The
- * method returns true if successfully read the files and false if not. To 
- * ensure no data race happens the lock field grants a lock to one thread at a
- * time when that thread is editing the current shared Fazebook object. If 
- * some files in the parameter Collection are invalid the method will disregard
- * those files and read the valid files.
+ * represent the platforms and finally it has a ReentrantReadWriteLock field.
+ * Every public method that changes the platform takes its write lock and
+ * every public method that reads it takes its read lock, so many readers can
+ * run at the same time but never while a thread (a file reading thread, a
+ * stream or the caller) is changing the platform. The lock is reentrant, so
+ * the threads that hold the write lock for a whole batch of lines can still
+ * call these methods. There is also a StampedLock field that areFriends()
+ * uses to try answering without taking any lock. Any null parameters will
+ * result in false or null being returned. The addUser() method adds a user
+ * without friends to the platform. If there is already a user with the
+ * parameter name or if the parameter name is empty it just returns false
+ * without changing anything. The getAllUsers() method returns a collection of
+ * all the current users of the platform. The addFriends() method takes two
+ * userNames as parameters and returns true if they successfully become
+ * friends. If the names are invalid false will be returned. If either user is
+ * not a current user, it will add them to the platform and then make them
+ * friends. If they're already friends or if someone tries to create a
+ * friendship themselves by putting two identical names as parameters false is
+ * returned. The getFriends() method takes a user name as a parameter and
+ * returns a Collection of that user's friends. If the user has no friends, or
+ * isn't on the platform an empty Collection is returned. The unfriend()
+ * method takes two user names as parameters and removes the friendship
+ * between them. If either of the parameter users isn't on the platform, or if
+ * they are on the platform but aren't friends, false is returned and nothing
+ * changes. The removeUser() method removes a user and all of the user's
+ * friendships. The areFriends() method takes two user names and returns true
+ * if they are friends, and the areFriendsBatch() method takes two arrays of
+ * user names and checks every pair at the same index at once. The
+ * peopleYouMayWannaKnow() method takes a user name as a parameter and returns
+ * a Collection of names of friends of that user's friends. The collection
+ * will not include any names of people the user is already friends with or
+ * the user himself. If the parameter user isn't on the platform an empty
+ * Collection is returned. This is also returned if the user is on the
+ * platform but doesn't have any friends or his friends don't have friends.
+ * The neighborhood() method takes a user name and a number of hops k and
+ * returns a Collection of every user that can be reached from that user in at
+ * most k hops, not including the user himself, and the countWithinHops()
+ * method returns only how many users that is. Both use the FriendIndex field,
+ * which gives every user a dense integer id so the search can use BitSets and
+ * check its biggest levels in parallel. Finally the readSocialNetworkData()
+ * method uses an inner MyThread class to pass the name of one file from the
+ * parameter Collection and have the thread read it and change the platform
+ * based on the file's contents. Each thread reads a file using a Scanner and
+ * either adds a user or a friendship based on the contents of the file. The
+ * method will join all the threads (wait for them to finish) to ensure that
+ * when the method call is over no more changes happen to the current Fazebook
+ * object. This way another method can be called after readSocialNetworkData()
+ * without us having to worry that the new method is dealing with an
+ * unfinished current object. The method returns true if successfully read the
+ * files and false if not. To ensure no data race happens the write lock of
+ * the lock field is given to one thread at a time when that thread is editing
+ * the current shared Fazebook object. If some files in the parameter
+ * Collection are invalid the method will disregard those files and read the
+ * valid files. Each line of a file can also say removeuser or unfriend to
+ * remove a user or a friendship. The streamFromQueue(),
+ * streamFromInputStream() and tailSocialNetworkData() methods are used for
+ * data that keeps coming instead of a list of finished files. They read a
+ * BlockingQueue, an InputStream or a file that keeps growing in a background
+ * thread and return a DataStream object, an inner class that applies the
+ * lines in batches and tells the caller how many lines have been applied so
+ * far and how fast, and that can be stopped. The recommendForAllUsers()
+ * method computes the best k people you may know of every user in parallel
+ * with an inner RecommendationTask class and gives them to a consumer one
+ * user at a time, and writeRecommendationsForAllUsers() writes them to a file
+ * instead.
  */
 
 public class Fazebook {
     
     private Comparator<String> c = new StringComparator();
     private EWDGraph<String> graph = new EWDGraph<String>(c);
-    private Object lock = new Object();
+    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    
+    //taken in write mode together with the write lock of the field above, 
+    //so areFriends() can check the index without taking any lock and then
+    //make sure no thread changed the platform while it was checking
+    private StampedLock version = new StampedLock();
+    private long versionStamp;
+    
+    private FriendIndex index = new FriendIndex();
 
     //adds a User to the current object and returns true if successfully added.
     //The addUser() method adds a user without friends to the platform. 
@@ -67,15 +118,72 @@ public class Fazebook {
         
         //checks for invalid parameters
         if (userName != null && !userName.equals("")) {
-            result = graph.newEWDGraphVertex(userName);
+            //the write lock makes sure no other thread reads or changes the
+            //platform while the user is added
+            lockWrite();
+            
+            try {
+                result = graph.newEWDGraphVertex(userName);
+                
+                //keeps the dense index in sync with the graph
+                if (result) {
+                    index.addUser(userName);
+                }
+            }
+            
+            finally {
+                unlockWrite();
+            }
         }
                 
         return result;
     }
 
+    //removes the parameter user and all of the user's friendships from the
+    //current object and returns true if successfully removed. If the user
+    //isn't on the platform false is returned and nothing changes. Since every
+    //friendship is stored in both directions, only the user's friends can
+    //have an edge to the user, so only their adjacency maps are changed
+    //instead of looking at every user on the platform.
+    public boolean removeUser(String userName) {
+        boolean result = false;
+        
+        //checks for invalid parameters
+        if (userName != null && !userName.equals("")) {
+            //same explanation as the lock in addUser()
+            lockWrite();
+            
+            try {
+                result = graph.removeEWDGraphVertex(userName, 
+                        graph.getNeighborsOfVertex(userName));
+                
+                //keeps the dense index in sync with the graph
+                if (result) {
+                    index.removeUser(userName);
+                }
+            }
+            
+            finally {
+                unlockWrite();
+            }
+        }
+        
+        return result;
+    }
+
     //returns a collection of all the users in the current object.
     public Collection<String> getAllUsers() {
-        return graph.getEWDGraphVertices();
+        //the read lock makes sure no other thread changes the platform while
+        //the users are copied
+        lock.readLock().lock();
+        
+        try {
+            return graph.getEWDGraphVertices();
+        }
+        
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     //creates a friendship between both parameter users, returns true if 
@@ -91,8 +199,22 @@ public class Fazebook {
         if (userName1 != null && !userName1.equals("") && 
                 userName2 != null && !userName2.equals("")) {
             
-            result = (graph.newEWDGraphEdge(userName1, userName2, 1) && 
-                    graph.newEWDGraphEdge(userName2, userName1, 1));
+            //same explanation as the lock in addUser()
+            lockWrite();
+            
+            try {
+                result = (graph.newEWDGraphEdge(userName1, userName2, 1) && 
+                        graph.newEWDGraphEdge(userName2, userName1, 1));
+                
+                //keeps the dense index in sync with the graph
+                if (result) {
+                    index.addFriendship(userName1, userName2);
+                }
+            }
+            
+            finally {
+                unlockWrite();
+            }
         }
                 
         return result;
@@ -106,7 +228,16 @@ public class Fazebook {
             return null;
         }
         
-        return graph.getNeighborsOfVertex(userName);
+        //same explanation as the lock in getAllUsers()
+        lock.readLock().lock();
+        
+        try {
+            return graph.getNeighborsOfVertex(userName);
+        }
+        
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     //removes a friendship between both parameter users. If either of the 
@@ -120,13 +251,134 @@ public class Fazebook {
         if (userName1 != null && !userName1.equals("") && 
                 userName2 != null && !userName2.equals("")) {
             
-            result = (graph.removeEWDGraphEdge(userName1, userName2) && 
-                    graph.removeEWDGraphEdge(userName2, userName1));
+            //same explanation as the lock in addUser()
+            lockWrite();
+            
+            try {
+                result = (graph.removeEWDGraphEdge(userName1, userName2) && 
+                        graph.removeEWDGraphEdge(userName2, userName1));
+                
+                //keeps the dense index in sync with the graph
+                if (result) {
+                    index.removeFriendship(userName1, userName2);
+                }
+            }
+            
+            finally {
+                unlockWrite();
+            }
+        }
+                
+        return result;
+    }
+
+    //returns true if both parameter users are friends and false otherwise.
+    //If either user is null or isn't on the platform false is returned. The
+    //check is done on the FriendIndex, so it is one id lookup per user and one
+    //probe into the first user's friend table.
+    public boolean areFriends(String userName1, String userName2) {
+        //checks for invalid parameters
+        if (userName1 == null || userName2 == null) {
+            return false;
         }
+        
+        //first tries without taking a lock, so the many threads calling this
+        //method don't all have to change the lock's shared state. The answer
+        //is only used if no thread took the write lock while it was computed.
+        //A thread changing the index at the same time can also make the
+        //lookup throw, which counts as a failed try
+        long stamp = version.tryOptimisticRead();
+        
+        if (stamp != 0) {
+            try {
+                boolean result = checkFriends(userName1, userName2);
                 
+                if (version.validate(stamp)) {
+                    return result;
+                }
+            }
+            
+            catch (RuntimeException e) {
+            }
+        }
+        
+        //same explanation as the lock in neighborhood()
+        lock.readLock().lock();
+        
+        try {
+            return checkFriends(userName1, userName2);
+        }
+        
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //checks many friendships at once. The answer for userNames1[i] and
+    //userNames2[i] is stored at index i of the returned array, using the same
+    //rules as areFriends(). Returns null if either array is null or if they
+    //don't have the same length. The lock is only taken once for the whole
+    //batch instead of once per pair.
+    public boolean[] areFriendsBatch(String[] userNames1, String[] userNames2) {
+        //checks for invalid parameters
+        if (userNames1 == null || userNames2 == null 
+                || userNames1.length != userNames2.length) {
+            return null;
+        }
+        
+        boolean[] result = new boolean[userNames1.length];
+        
+        lock.readLock().lock();
+        
+        try {
+            for (int i = 0; i < result.length; i++) {
+                if (userNames1[i] != null && userNames2[i] != null) {
+                    result[i] = checkFriends(userNames1[i], userNames2[i]);
+                }
+            }
+        }
+        
+        finally {
+            lock.readLock().unlock();
+        }
+        
         return result;
     }
 
+    //private helper method that takes the write lock. The outermost call of a
+    //thread also takes the StampedLock in write mode, which makes the
+    //optimistic tries of areFriends() fail until the write lock is released.
+    private void lockWrite() {
+        lock.writeLock().lock();
+        
+        if (lock.getWriteHoldCount() == 1) {
+            versionStamp = version.writeLock();
+        }
+    }
+
+    //private helper method that releases the write lock taken by lockWrite().
+    private void unlockWrite() {
+        if (lock.getWriteHoldCount() == 1) {
+            version.unlockWrite(versionStamp);
+        }
+        
+        lock.writeLock().unlock();
+    }
+
+    //private helper method used by areFriends() and areFriendsBatch(). Looks
+    //up the ids of both users and asks the FriendIndex if they are friends.
+    private boolean checkFriends(String userName1, String userName2) {
+        int id1 = index.idOf(userName1);
+        
+        if (id1 == -1) {
+            return false;
+        }
+        
+        int id2 = index.idOf(userName2);
+        
+        return id2 != -1 && index.areFriends(id1, id2);
+    }
+
     //returns a Collection of friends of friends of the parameter user
     //excluding people who are already friends of the user or the user himself.
     //If the parameter user isn't on the platform an empty Collection is 
@@ -140,26 +392,199 @@ public class Fazebook {
         
         Set<String> newFriends = new HashSet<String>();
         
-        if (graph.isEWDGraphVertex(userName)) {
+        //same explanation as the lock in getAllUsers()
+        lock.readLock().lock();
+        
+        try {
+            if (graph.isEWDGraphVertex(userName)) {
             
-            Collection<String> friends = graph.getNeighborsOfVertex(userName);
+                Collection<String> friends = 
+                        graph.getNeighborsOfVertex(userName);
         
-            for (String s: friends) {
-                for (String v: graph.getNeighborsOfVertex(s)) {
+                for (String s: friends) {
+                    for (String v: graph.getNeighborsOfVertex(s)) {
                     
-                    //doesn't add any people who are already friends of the 
-                    //parameter user or the user himself
-                    if (!v.equals(userName) && !friends.contains(v)) {
-                        newFriends.add(v);
+                        //doesn't add any people who are already friends of the 
+                        //parameter user or the user himself
+                        if (!v.equals(userName) && !friends.contains(v)) {
+                            newFriends.add(v);
                         
+                        }
                     }
                 }
             }
         }
         
+        finally {
+            lock.readLock().unlock();
+        }
+        
         return newFriends;
     }
 
+    //computes up to k people every user on the platform may know and gives
+    //them to the parameter consumer together with the user's name, one call
+    //per user. The people are friends of friends ranked by number of mutual
+    //friends (ties broken by name), best first, so the first k of them are
+    //the best ones peopleYouMayWannaKnow() would return. The users are split
+    //into ranges of ids that are handled in parallel by a ForkJoinPool and
+    //every result is given to the consumer as soon as it is computed, so the
+    //results of all users are never in memory at the same time. The consumer
+    //is called by one thread at a time but in no particular order of users.
+    //The job runs on a snapshot of the FriendIndex that is copied while
+    //holding the read lock, so the lock is only held for the copy. Because
+    //every public method of this class takes the lock itself, other threads
+    //and the consumer can still call them while the job runs. The results
+    //are for the platform as it was when the job started.
+    //Returns false if the consumer is null or k is 0 or negative and true
+    //otherwise.
+    public boolean recommendForAllUsers(int k, 
+            BiConsumer<String, List<String>> consumer) {
+        //checks for invalid parameters
+        if (consumer == null || k < 1) {
+            return false;
+        }
+        
+        FriendIndex snapshot;
+        
+        //the read lock makes sure the copy isn't taken while a thread is
+        //changing the platform
+        lock.readLock().lock();
+        
+        try {
+            snapshot = index.snapshot();
+        }
+        
+        finally {
+            lock.readLock().unlock();
+        }
+        
+        //Scratch objects that aren't being used by a task right now. A task
+        //takes one (or creates one if there are none) and puts it back when
+        //it is done, so there are never more than the number of threads
+        //running tasks, and they are all dropped when the job is over
+        ConcurrentLinkedQueue<FriendIndex.Scratch> scratches = 
+                new ConcurrentLinkedQueue<FriendIndex.Scratch>();
+        
+        ForkJoinPool.commonPool().invoke(new RecommendationTask(snapshot, 0, 
+                snapshot.size(), k, scratches, consumer));
+        
+        return true;
+    }
+
+    //same as recommendForAllUsers() but writes the results to the file with
+    //the parameter name, one line per user. Each line has the user's name
+    //followed by the people he may know, separated by spaces. The file is
+    //written in UTF-8, the same encoding the streams read. Returns false
+    //if the file name is null, k is 0 or negative or the file can't be
+    //written and true otherwise.
+    public boolean writeRecommendationsForAllUsers(int k, String filename) {
+        //checks for invalid parameters
+        if (filename == null || k < 1) {
+            return false;
+        }
+        
+        try (PrintWriter output = new PrintWriter(filename, 
+                StandardCharsets.UTF_8)) {
+            recommendForAllUsers(k, (user, people) -> {
+                output.print(user);
+                
+                for (String s: people) {
+                    output.print(' ');
+                    output.print(s);
+                }
+                
+                output.println();
+            });
+            
+            //PrintWriter doesn't throw, so errors are checked at the end
+            return !output.checkError();
+        }
+        
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    //returns a Collection of every user that can be reached from the parameter
+    //user in at most k hops, not including the user himself. With k = 1 these
+    //are the user's friends and with k = 2 also the friends of his friends.
+    //If the parameter user isn't on the platform or k is 0 or negative an
+    //empty Collection is returned. The search is done by the FriendIndex on
+    //dense user ids with BitSet frontiers.
+    public Collection<String> neighborhood(String userName, int k) {
+        //checks for invalid parameters
+        if (userName == null) {
+            return null;
+        }
+        
+        //the read lock makes sure no thread reading files changes the
+        //platform while the search is running, but lets other read only
+        //methods run at the same time
+        lock.readLock().lock();
+        
+        try {
+            BitSet reached = searchWithinHops(userName, k);
+            
+            if (reached == null) {
+                return new ArrayList<String>();
+            }
+            
+            return index.namesOf(reached);
+        }
+        
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //returns the number of users that can be reached from the parameter user
+    //in at most k hops, not including the user himself. Same as the size of
+    //neighborhood() but without creating the Collection of names. Returns 0
+    //if the parameter user is null or isn't on the platform or k is 0 or
+    //negative.
+    public int countWithinHops(String userName, int k) {
+        //checks for invalid parameters
+        if (userName == null) {
+            return 0;
+        }
+        
+        //same explanation as the lock in neighborhood()
+        lock.readLock().lock();
+        
+        try {
+            BitSet reached = searchWithinHops(userName, k);
+            
+            if (reached == null) {
+                return 0;
+            }
+            
+            return reached.cardinality();
+        }
+        
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //private helper method that runs the k hop search for neighborhood() and
+    //countWithinHops(). Returns the BitSet of reached user ids without the
+    //user himself, or null if the user isn't on the platform or k < 1.
+    private BitSet searchWithinHops(String userName, int k) {
+        int source = index.idOf(userName);
+        
+        if (source == -1 || k < 1) {
+            return null;
+        }
+        
+        BitSet reached = index.withinHops(source, k);
+        
+        //the user himself isn't part of his own neighborhood
+        reached.clear(source);
+        
+        return reached;
+    }
+
     //reads files from a Collection of file names and uses the contents of the
     //files to change the current Object. Creates threads, with each thread
     //reading a different file from the collection. Returns true if successful
@@ -202,6 +627,439 @@ public class Fazebook {
         return result;
     }
     
+    //starts reading commands from the parameter queue in a new background
+    //thread and returns a DataStream that can be used to follow its progress
+    //and stop it. Every String in the queue is one line in the same format as
+    //the files of readSocialNetworkData(). The stream keeps waiting for new
+    //lines until it is stopped. Returns null if the parameter is null.
+    public DataStream streamFromQueue(BlockingQueue<String> source) {
+        //checks for invalid parameters
+        if (source == null) {
+            return null;
+        }
+        
+        return new DataStream(source, null, false);
+    }
+
+    //starts reading lines from the parameter InputStream in a new background
+    //thread and returns a DataStream for it. The stream ends when the
+    //InputStream ends or when it is stopped. Returns null if the parameter is
+    //null.
+    public DataStream streamFromInputStream(InputStream source) {
+        //checks for invalid parameters
+        if (source == null) {
+            return null;
+        }
+        
+        return new DataStream(null, source, false);
+    }
+
+    //starts following the file with the parameter name in a new background
+    //thread and returns a DataStream for it. Lines already in the file are
+    //read first and then the stream keeps checking for lines that are added
+    //to the end of the file until it is stopped. A line is only applied once
+    //its end of line has been written. Returns null if the parameter is null
+    //or the file can't be opened.
+    public DataStream tailSocialNetworkData(String filename) {
+        //checks for invalid parameters
+        if (filename == null) {
+            return null;
+        }
+        
+        try {
+            return new DataStream(null, new FileInputStream(filename), true);
+        }
+        
+        catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    //private helper method that changes the current object based on one line
+    //of social network data. The first word of the line says what to do:
+    //adduser and removeuser are followed by one user name, and addfriends and
+    //unfriend are followed by two user names. Lines that don't follow this
+    //format are ignored. The caller has to hold the write lock.
+    private void applyCommand(String line) {
+        //splits the line into an array of words
+        String[] arr = line.split("\\s+");
+        
+        if (arr[0].equals("adduser") && arr.length >= 2) {
+            addUser(arr[1]);
+        }
+        
+        else if (arr[0].equals("removeuser") && arr.length >= 2) {
+            removeUser(arr[1]);
+        }
+        
+        else if (arr[0].equals("addfriends") && arr.length >= 3) {
+            addFriends(arr[1], arr[2]);
+        }
+        
+        else if (arr[0].equals("unfriend") && arr.length >= 3) {
+            unfriend(arr[1], arr[2]);
+        }
+    }
+
+    /*
+     * This class is returned by the streaming methods above and reads one
+     * source of social network data in its own background thread until the
+     * source ends or stop() is called. It reads the lines in micro batches:
+     * it waits for at least one line and then takes every line that is
+     * already available (up to BATCH_SIZE lines for a queue, or one buffer of
+     * bytes for an InputStream) and applies the whole batch while holding the
+     * Fazebook write lock only once. After a batch is applied the applied
+     * count is increased, so getAppliedCount() acts as a watermark: every
+     * line up to that number has already changed the platform and is visible
+     * to other methods. Lines that aren't valid commands are skipped but
+     * still count. The awaitApplied() method waits until the watermark
+     * reaches a number, and getEventsPerSecond() returns the sustained number
+     * of lines applied per second of time spent applying batches. When
+     * reading bytes the stream splits them into lines itself instead of using
+     * a Reader, so a line that is only half written at the end of a tailed
+     * file is kept until the rest of it arrives.
+     */
+    public class DataStream {
+        
+        //most lines taken from a queue in one batch
+        private static final int BATCH_SIZE = 4096;
+        
+        //size of the buffer used to read an InputStream
+        private static final int BUFFER_SIZE = 64 * 1024;
+        
+        //how long to wait before checking a queue or a tailed file again
+        private static final long POLL_MILLIS = 50;
+        
+        //how long stop() waits for the background thread to finish
+        private static final long STOP_WAIT_MILLIS = 1000;
+        
+        private BlockingQueue<String> queue;
+        private InputStream input;
+        private boolean tail;
+        private Thread worker;
+        private volatile boolean running = true;
+        private volatile long applied = 0;
+        
+        //total time spent applying batches, used for the throughput
+        private volatile long applyNanos = 0;
+        
+        //monitor notified every time the watermark moves and when the stream
+        //ends, used by awaitApplied()
+        private Object progress = new Object();
+        private boolean ended = false;
+        
+        //constructor stores the source and starts the background thread.
+        //Only one of queue and input is used.
+        private DataStream(BlockingQueue<String> queue, InputStream input, 
+                boolean tail) {
+            this.queue = queue;
+            this.input = input;
+            this.tail = tail;
+            
+            worker = new Thread(() -> run());
+            
+            //an unbounded stream that was never stopped shouldn't keep the
+            //program from exiting
+            worker.setDaemon(true);
+            
+            worker.start();
+        }
+        
+        //returns the number of lines from the source that have been applied
+        //to the platform so far.
+        public long getAppliedCount() {
+            return applied;
+        }
+        
+        //returns the number of lines applied per second while the stream was
+        //applying batches. Time spent waiting for the source to have new lines
+        //or waiting for the lock isn't counted, so a tailed file that is idle
+        //most of the time still shows how fast its lines are applied.
+        public double getEventsPerSecond() {
+            double seconds = applyNanos / 1e9;
+            
+            if (seconds <= 0) {
+                return 0;
+            }
+            
+            return applied / seconds;
+        }
+        
+        //returns true while the stream is still reading its source.
+        public boolean isRunning() {
+            return running && worker.isAlive();
+        }
+        
+        //waits until at least count lines have been applied or the stream
+        //ended or timeoutMillis milliseconds passed. Returns true if count
+        //lines have been applied.
+        public boolean awaitApplied(long count, long timeoutMillis) 
+                throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            
+            synchronized(progress) {
+                long remaining = timeoutMillis;
+                
+                //sleeps until applyBatch() or the end of the stream wakes it
+                //up, or the time left runs out
+                while (applied < count && !ended && remaining > 0) {
+                    progress.wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+                
+                return applied >= count;
+            }
+        }
+        
+        //stops the stream, so when this method returns no more changes come
+        //from this stream. Lines that were read but not applied yet are
+        //dropped. An InputStream source is closed so that a read that is
+        //blocked waiting for data (a socket for example) returns right away.
+        //Some streams, like System.in, can't be woken up by closing them, so
+        //this only waits STOP_WAIT_MILLIS for the thread and then takes the
+        //write lock once. applyBatch() checks running while holding the
+        //write lock, so a thread that wakes up later can't change anything.
+        public void stop() throws InterruptedException {
+            running = false;
+            worker.interrupt();
+            
+            if (input != null) {
+                try {
+                    input.close();
+                }
+                
+                //the stream is being stopped anyway
+                catch (IOException e) {
+                }
+            }
+            
+            worker.join(STOP_WAIT_MILLIS);
+            
+            //waits for a batch that might still be applying
+            if (worker.isAlive()) {
+                lock.writeLock().lock();
+                lock.writeLock().unlock();
+            }
+        }
+        
+        //code executed by the background thread.
+        private void run() {
+            try {
+                if (queue != null) {
+                    readQueue();
+                }
+                
+                else {
+                    readBytes();
+                }
+            }
+            
+            catch (InterruptedException e) {
+            }
+            
+            //also thrown when stop() closes the InputStream during a read,
+            //which is a normal way for the stream to end
+            catch (IOException e) {
+            }
+            
+            finally {
+                //wakes up every thread in awaitApplied()
+                synchronized(progress) {
+                    ended = true;
+                    progress.notifyAll();
+                }
+                
+                if (input != null) {
+                    try {
+                        input.close();
+                    }
+                    
+                    catch (IOException e) {
+                    }
+                }
+            }
+        }
+        
+        //takes batches of lines from the queue until the stream is stopped.
+        private void readQueue() throws InterruptedException {
+            ArrayList<String> batch = new ArrayList<String>(BATCH_SIZE);
+            
+            while (running) {
+                //waits a short time for the first line so that stop() is
+                //noticed even if nothing is added to the queue
+                String first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    applyBatch(batch);
+                    batch.clear();
+                }
+            }
+        }
+        
+        //reads the InputStream one buffer at a time, splits the bytes into
+        //lines and applies the complete lines of every buffer as one batch.
+        private void readBytes() throws IOException, InterruptedException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ByteArrayOutputStream partial = new ByteArrayOutputStream();
+            ArrayList<String> batch = new ArrayList<String>();
+            
+            while (running) {
+                int n = input.read(buffer);
+                
+                if (n == -1) {
+                    //a tailed file waits for more lines to be written
+                    if (tail) {
+                        Thread.sleep(POLL_MILLIS);
+                        continue;
+                    }
+                    
+                    //the last line of a finished stream might not end with a
+                    //new line
+                    if (partial.size() > 0) {
+                        batch.add(toLine(partial));
+                        applyBatch(batch);
+                    }
+                    
+                    return;
+                }
+                
+                int start = 0;
+                
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] == '\n') {
+                        partial.write(buffer, start, i - start);
+                        batch.add(toLine(partial));
+                        partial.reset();
+                        start = i + 1;
+                    }
+                }
+                
+                //keeps the bytes after the last new line for the next read
+                partial.write(buffer, start, n - start);
+                
+                if (!batch.isEmpty()) {
+                    applyBatch(batch);
+                    batch.clear();
+                }
+            }
+        }
+        
+        //turns the bytes of one line into a String, dropping the \r of
+        //Windows line endings.
+        private String toLine(ByteArrayOutputStream bytes) {
+            String line = bytes.toString(StandardCharsets.UTF_8);
+            
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            
+            return line;
+        }
+        
+        //applies every line of the batch while holding the write lock once
+        //and then moves the watermark forward.
+        private void applyBatch(ArrayList<String> batch) {
+            lockWrite();
+            
+            try {
+                //a stopped stream doesn't change the platform any more
+                if (!running) {
+                    return;
+                }
+                
+                long start = System.nanoTime();
+                
+                for (String line : batch) {
+                    applyCommand(line);
+                }
+                
+                applyNanos += System.nanoTime() - start;
+            }
+            
+            finally {
+                unlockWrite();
+            }
+            
+            //moves the watermark and wakes up every thread in awaitApplied()
+            synchronized(progress) {
+                applied += batch.size();
+                progress.notifyAll();
+            }
+        }
+    }
+    
+    /*
+     * This class is the fork/join task used by recommendForAllUsers(). It 
+     * handles the users of the snapshot field with ids from start up to end.
+     * If the range has more than LEAF_SIZE ids it splits it in half and runs
+     * both halves as new tasks, otherwise it takes a Scratch from the shared
+     * queue of unused ones, computes the recommendations of every user in the
+     * range with it and gives them to the consumer, holding the consumer's
+     * lock so it is called by one thread at a time. The Scratch is put back
+     * in the queue at the end so the next task can reuse it.
+     */
+    private class RecommendationTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        //largest range of ids that isn't split any more
+        private static final int LEAF_SIZE = 1024;
+        
+        private FriendIndex snapshot;
+        private int start;
+        private int end;
+        private int k;
+        private ConcurrentLinkedQueue<FriendIndex.Scratch> scratches;
+        private BiConsumer<String, List<String>> consumer;
+        
+        //constructor to initialize the fields.
+        public RecommendationTask(FriendIndex snapshot, int start, int end, 
+                int k, ConcurrentLinkedQueue<FriendIndex.Scratch> scratches, 
+                BiConsumer<String, List<String>> consumer) {
+            this.snapshot = snapshot;
+            this.start = start;
+            this.end = end;
+            this.k = k;
+            this.scratches = scratches;
+            this.consumer = consumer;
+        }
+        
+        protected void compute() {
+            if (end - start > LEAF_SIZE) {
+                int middle = (start + end) / 2;
+                
+                invokeAll(new RecommendationTask(snapshot, start, middle, k, 
+                        scratches, consumer), new RecommendationTask(snapshot, 
+                        middle, end, k, scratches, consumer));
+            }
+            
+            else {
+                FriendIndex.Scratch s = scratches.poll();
+                
+                if (s == null) {
+                    s = snapshot.newScratch(k);
+                }
+                
+                for (int id = start; id < end; id++) {
+                    String user = snapshot.nameOf(id);
+                    
+                    //skips ids of users that were removed
+                    if (user != null) {
+                        List<String> people = snapshot.recommend(id, k, s);
+                        
+                        synchronized(consumer) {
+                            consumer.accept(user, people);
+                        }
+                    }
+                }
+                
+                scratches.add(s);
+            }
+        }
+    }
+    
     private class MyThread extends Thread {
 
         //field used to store the file name
@@ -221,34 +1079,22 @@ public class Fazebook {
                 //initializes the scanner to read the file
                 input = new Scanner(files);
                 String line;
-                String[] arr;
                 
                 //while there is text left to read
                 while (input.hasNextLine()) {
                     //stores each line of text from the file
                     line = input.nextLine();
                     
-                    //splits the line into an array of words
-                    arr = line.split("\\s+");
+                    //the write lock from the Fazebook field is used to ensure
+                    //only one thread edits this Fazebook object at a time
+                    lockWrite();
                     
-                    //checks if the text in the file is instructing us to add a
-                    //user or add a friendship
-                    if (arr[0].equals("adduser")) {
-                        //a lock from the Fazebook field is used to ensure only
-                        //one thread edits this Fazebook object at a time
-                        synchronized(lock){
-                            //adds the user using the name listed in the file
-                            addUser(arr[1]);
-                        }
+                    try {
+                        applyCommand(line);
                     }
                     
-                    else if (arr[0].equals("addfriends")) {
-                        //same explanation as above lock
-                        synchronized(lock){
-                            //adds a friendship using the two following names
-                            //in the line
-                            addFriends(arr[1], arr[2]);
-                        }
+                    finally {
+                        unlockWrite();
                     }
                 }
                             
@@ -0,0 +1,638 @@
+package fazebook;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/*
+ * This class is a helper index used by the Fazebook class to answer graph
+ * queries that have to touch a very large number of users. It gives every
+ * user a dense integer id (0, 1, 2, ...) the first time it sees them and
+ * stores each user's friends as an array of those ids, so searches can mark
+ * users in a BitSet instead of putting Strings in a HashSet and only walk the
+ * real friends of a user. Next to every friend array there is a small open
+ * addressing hash table that stores positions in that array, so checking a
+ * friendship is one probe into an int array instead of several HashMap
+ * lookups with boxed values. A table is always twice as long as its friend
+ * array so it is at most half full, its length is a power of 2, and it uses
+ * -1 for empty slots and linear probing. The tables are only used for
+ * checking and removing friends, every search walks the friend arrays.
+ * Fazebook keeps it up to date by calling addUser(), addFriendship(),
+ * removeFriendship() and removeUser() every time its own EWDGraph changes.
+ * When a user is removed its arrays are dropped and its id is put on a free
+ * list, and the next new user gets that id, so a feed that keeps removing and
+ * adding users doesn't make the index (and every BitSet and Scratch sized by
+ * it) grow forever. Method idOf() returns the id of a user or -1 if the user
+ * isn't in the index and nameOf() does the opposite. The areFriends() method
+ * returns true if the two ids are friends. The withinHops() method does a
+ * breadth first search from one user and returns a BitSet with every user
+ * that can be reached in at most k hops. The search is direction optimizing:
+ * while the frontier (the users found in the last level) is small it goes
+ * top-down, meaning it walks the friends of every frontier user. Once the
+ * frontier gets big it switches to bottom-up, where every user not found
+ * yet checks if any of its friends is in the frontier and stops at the first
+ * one it finds. The bottom-up levels are split into ranges of ids that are
+ * checked in parallel, with each range writing only its own words of the
+ * next frontier so no locking is needed. This class does no locking itself,
+ * Fazebook holds its lock while calling it, except for areFriends() which
+ * Fazebook may call without the lock and then check that nothing changed
+ * while it ran. areFriends() can see half changed arrays in that case, so it
+ * never probes more slots than the table has and may throw an exception that
+ * Fazebook treats as a failed try. The recommend() method returns the best
+ * people a user may know, ranked by number of mutual friends, using the
+ * arrays of a Scratch object that is reused for every user a task handles,
+ * and snapshot() returns a copy of the index that later updates don't
+ * change.
+ */
+
+class FriendIndex {
+
+    //switch to bottom-up once the frontier's edges are more than 1/ALPHA of
+    //the edges of users not found yet
+    private static final int ALPHA = 14;
+
+    //switch back to top-down once the frontier has less than 1/BETA of the
+    //users
+    private static final int BETA = 24;
+
+    //number of ids each parallel task checks in a bottom-up level. Must be a
+    //multiple of 64 so that two tasks never write the same long
+    private static final int CHUNK = 64 * 256;
+
+    //a ConcurrentHashMap so that Fazebook's optimistic areFriends() can look
+    //up ids while another thread is adding users without the map breaking
+    private ConcurrentHashMap<String, Integer> ids = 
+            new ConcurrentHashMap<String, Integer>();
+    private String[] names = new String[16];
+    private int[][] friends = new int[16][];
+    private int[][] tables = new int[16][];
+    private int[] friendCounts = new int[16];
+    private int size = 0;
+    private long edgeCount = 0;
+
+    //ids of removed users that can be given to new users
+    private int[] freeIds = new int[16];
+    private int freeCount = 0;
+
+    //friend array shared by every removed user so no memory is kept for them
+    private static final int[] NO_FRIENDS = new int[0];
+
+    //returns the id of the parameter user or -1 if the user isn't indexed.
+    public int idOf(String userName) {
+        Integer id = ids.get(userName);
+
+        if (id == null) {
+            return -1;
+        }
+
+        return id;
+    }
+
+    //returns the name of the user with the parameter id, or null if that
+    //user was removed.
+    public String nameOf(int id) {
+        return names[id];
+    }
+
+    //returns the number of ids given out so far, including the ids on the
+    //free list. Every id is smaller than this number.
+    public int size() {
+        return size;
+    }
+
+    //gives the parameter user an id if it doesn't have one already, reusing
+    //the id of a removed user if there is one. Returns the id of the user
+    //either way.
+    public int addUser(String userName) {
+        Integer id = ids.get(userName);
+
+        if (id != null) {
+            return id;
+        }
+
+        if (freeCount > 0) {
+            freeCount--;
+            int free = freeIds[freeCount];
+
+            names[free] = userName;
+            friends[free] = new int[4];
+            tables[free] = newTable(8);
+            ids.put(userName, free);
+
+            return free;
+        }
+
+        //doubles the arrays when they are full
+        if (size == names.length) {
+            int newLength = names.length * 2;
+            String[] newNames = new String[newLength];
+            int[][] newFriends = new int[newLength][];
+            int[][] newTables = new int[newLength][];
+            int[] newCounts = new int[newLength];
+
+            System.arraycopy(names, 0, newNames, 0, size);
+            System.arraycopy(friends, 0, newFriends, 0, size);
+            System.arraycopy(tables, 0, newTables, 0, size);
+            System.arraycopy(friendCounts, 0, newCounts, 0, size);
+
+            names = newNames;
+            friends = newFriends;
+            tables = newTables;
+            friendCounts = newCounts;
+        }
+
+        names[size] = userName;
+        friends[size] = new int[4];
+        tables[size] = newTable(8);
+        ids.put(userName, size);
+        size++;
+
+        return size - 1;
+    }
+
+    //records a friendship between both parameter users. Fazebook only calls
+    //this after the friendship was successfully added to its graph, so it
+    //doesn't check if they are already friends.
+    public void addFriendship(String userName1, String userName2) {
+        int id1 = addUser(userName1);
+        int id2 = addUser(userName2);
+
+        addFriendId(id1, id2);
+        addFriendId(id2, id1);
+        edgeCount++;
+    }
+
+    //removes the friendship between both parameter users if they are indexed.
+    public void removeFriendship(String userName1, String userName2) {
+        int id1 = idOf(userName1);
+        int id2 = idOf(userName2);
+
+        if (id1 != -1 && id2 != -1 && removeFriendId(id1, id2)) {
+            removeFriendId(id2, id1);
+            edgeCount--;
+        }
+    }
+
+    //removes the parameter user and all of its friendships from the index.
+    //The user's arrays are dropped and its id is put on the free list.
+    public void removeUser(String userName) {
+        int id = idOf(userName);
+
+        if (id != -1) {
+            for (int j = 0; j < friendCounts[id]; j++) {
+                removeFriendId(friends[id][j], id);
+                edgeCount--;
+            }
+
+            friends[id] = NO_FRIENDS;
+            tables[id] = null;
+            friendCounts[id] = 0;
+            names[id] = null;
+            ids.remove(userName);
+
+            if (freeCount == freeIds.length) {
+                freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+            }
+
+            freeIds[freeCount] = id;
+            freeCount++;
+        }
+    }
+
+    //returns true if the users with both parameter ids are friends.
+    public boolean areFriends(int id1, int id2) {
+        return findSlot(id1, id2) != -1;
+    }
+
+    //returns a BitSet with the ids of every user that can be reached from the
+    //parameter id in at most k hops, including the source itself.
+    public BitSet withinHops(int source, int k) {
+        BitSet visited = new BitSet(size);
+        BitSet frontier = new BitSet(size);
+
+        visited.set(source);
+        frontier.set(source);
+
+        int frontierSize = 1;
+        long frontierEdges = friendCounts[source];
+        long unvisitedEdges = 2 * edgeCount - frontierEdges;
+        boolean bottomUp = false;
+
+        for (int level = 0; level < k && frontierSize > 0; level++) {
+            //decides which direction to use for this level
+            if (!bottomUp && frontierEdges > unvisitedEdges / ALPHA) {
+                bottomUp = true;
+            }
+
+            else if (bottomUp && frontierSize < size / BETA) {
+                bottomUp = false;
+            }
+
+            BitSet next;
+
+            if (bottomUp) {
+                next = bottomUpStep(visited, frontier);
+            }
+
+            else {
+                next = topDownStep(visited, frontier);
+            }
+
+            visited.or(next);
+            frontier = next;
+
+            //counts the users and edges of the new frontier for the next
+            //level's decision
+            frontierSize = 0;
+            frontierEdges = 0;
+
+            for (int i = frontier.nextSetBit(0); i >= 0;
+                    i = frontier.nextSetBit(i + 1)) {
+                frontierSize++;
+                frontierEdges += friendCounts[i];
+            }
+
+            unvisitedEdges -= frontierEdges;
+        }
+
+        return visited;
+    }
+
+    //returns up to k names of people the parameter user may know, best first.
+    //Candidates are friends of the user's friends that aren't the user or
+    //already his friends, ranked by how many mutual friends they have, with
+    //ties broken by name. The arrays of the parameter Scratch are used for
+    //counting so nothing the size of the platform is allocated per user.
+    public List<String> recommend(int user, int k, Scratch scratch) {
+        int[] counts = scratch.counts;
+        int[] stamps = scratch.stamps;
+        int[] touched = scratch.touched;
+        int touchedSize = 0;
+        int stamp = user + 1;
+
+        //marks the user and his friends so they are skipped as candidates
+        stamps[user] = stamp;
+
+        int[] list = friends[user];
+
+        for (int j = 0; j < friendCounts[user]; j++) {
+            stamps[list[j]] = stamp;
+        }
+
+        //counts the mutual friends of every friend of a friend
+        for (int j = 0; j < friendCounts[user]; j++) {
+            int f = list[j];
+            int[] friendList = friends[f];
+
+            for (int l = 0; l < friendCounts[f]; l++) {
+                int w = friendList[l];
+
+                if (stamps[w] != stamp) {
+                    if (counts[w] == 0) {
+                        touched[touchedSize] = w;
+                        touchedSize++;
+                    }
+
+                    counts[w]++;
+                }
+            }
+        }
+
+        //keeps the best k candidates in a heap with the worst one on top
+        int[] heap = scratch.heap;
+        int heapSize = 0;
+
+        for (int i = 0; i < touchedSize; i++) {
+            int w = touched[i];
+
+            if (heapSize < k) {
+                heap[heapSize] = w;
+                siftUp(heap, heapSize, counts);
+                heapSize++;
+            }
+
+            else if (better(w, heap[0], counts)) {
+                heap[0] = w;
+                siftDown(heap, heapSize, counts);
+            }
+        }
+
+        //takes the worst candidate off the heap each time, filling the array
+        //from the back so it ends up best first
+        String[] result = new String[heapSize];
+
+        for (int i = heapSize - 1; i >= 0; i--) {
+            result[i] = names[heap[0]];
+            heapSize--;
+            heap[0] = heap[heapSize];
+            siftDown(heap, heapSize, counts);
+        }
+
+        //clears the counts that were used so the Scratch can be reused
+        for (int i = 0; i < touchedSize; i++) {
+            counts[touched[i]] = 0;
+        }
+
+        return Arrays.asList(result);
+    }
+
+    //returns a copy of the users and friend arrays of this index that isn't
+    //changed by later updates, so a long search can run on it without
+    //holding Fazebook's lock. The copy has no name to id map and no tables,
+    //so it can only be used by methods that walk the friend arrays, like
+    //recommend() and withinHops().
+    public FriendIndex snapshot() {
+        FriendIndex copy = new FriendIndex();
+
+        copy.names = Arrays.copyOf(names, size);
+        copy.friends = new int[size][];
+        copy.tables = null;
+        copy.friendCounts = Arrays.copyOf(friendCounts, size);
+        copy.size = size;
+        copy.edgeCount = edgeCount;
+
+        //only copies the used part of every friend array
+        for (int i = 0; i < size; i++) {
+            if (friendCounts[i] == 0) {
+                copy.friends[i] = NO_FRIENDS;
+            }
+
+            else {
+                copy.friends[i] = Arrays.copyOf(friends[i], friendCounts[i]);
+            }
+        }
+
+        return copy;
+    }
+
+    //returns a new Scratch big enough for recommend() with the parameter k
+    //and the users currently in the index.
+    public Scratch newScratch(int k) {
+        return new Scratch(size, k);
+    }
+
+    //returns the names of every user whose id is set in the parameter BitSet.
+    public Collection<String> namesOf(BitSet users) {
+        ArrayList<String> result = new ArrayList<String>(users.cardinality());
+
+        for (int i = users.nextSetBit(0); i >= 0; i = users.nextSetBit(i + 1)) {
+            result.add(names[i]);
+        }
+
+        return result;
+    }
+
+    //walks the friends of every frontier user and returns the ones that
+    //weren't visited yet.
+    private BitSet topDownStep(BitSet visited, BitSet frontier) {
+        BitSet next = new BitSet(size);
+
+        for (int u = frontier.nextSetBit(0); u >= 0;
+                u = frontier.nextSetBit(u + 1)) {
+            int[] list = friends[u];
+
+            for (int j = 0; j < friendCounts[u]; j++) {
+                if (!visited.get(list[j])) {
+                    next.set(list[j]);
+                }
+            }
+        }
+
+        return next;
+    }
+
+    //checks every user that wasn't visited yet and returns the ones that have
+    //a friend in the frontier. Ranges of CHUNK ids are checked in parallel and
+    //each range only writes its own part of the words array.
+    private BitSet bottomUpStep(BitSet visited, BitSet frontier) {
+        long[] words = new long[(size + 63) / 64];
+        int chunks = (size + CHUNK - 1) / CHUNK;
+
+        IntStream tasks = IntStream.range(0, chunks);
+
+        if (chunks > 1) {
+            tasks = tasks.parallel();
+        }
+
+        tasks.forEach(c -> {
+            int end = Math.min(size, (c + 1) * CHUNK);
+
+            for (int v = visited.nextClearBit(c * CHUNK); v < end;
+                    v = visited.nextClearBit(v + 1)) {
+                int[] list = friends[v];
+
+                for (int j = 0; j < friendCounts[v]; j++) {
+                    //stops at the first friend found in the frontier
+                    if (frontier.get(list[j])) {
+                        words[v >> 6] |= 1L << v;
+                        break;
+                    }
+                }
+            }
+        });
+
+        return BitSet.valueOf(words);
+    }
+
+    //returns true if candidate a should be recommended before candidate b.
+    private boolean better(int a, int b, int[] counts) {
+        if (counts[a] != counts[b]) {
+            return counts[a] > counts[b];
+        }
+
+        return names[a].compareTo(names[b]) < 0;
+    }
+
+    //moves the candidate at index i of the heap up until its parent isn't
+    //worse than it.
+    private void siftUp(int[] heap, int i, int[] counts) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+
+            if (!better(heap[parent], heap[i], counts)) {
+                return;
+            }
+
+            int temp = heap[parent];
+            heap[parent] = heap[i];
+            heap[i] = temp;
+            i = parent;
+        }
+    }
+
+    //moves the candidate at the top of the heap down until both its children
+    //aren't worse than it.
+    private void siftDown(int[] heap, int heapSize, int[] counts) {
+        int i = 0;
+
+        while (2 * i + 1 < heapSize) {
+            int child = 2 * i + 1;
+
+            //picks the worse of the two children
+            if (child + 1 < heapSize 
+                    && better(heap[child], heap[child + 1], counts)) {
+                child++;
+            }
+
+            if (!better(heap[i], heap[child], counts)) {
+                return;
+            }
+
+            int temp = heap[child];
+            heap[child] = heap[i];
+            heap[i] = temp;
+            i = child;
+        }
+    }
+
+    //adds id friend to the end of the friend array of id user and puts its
+    //position in the user's table. When the array is full it is doubled and
+    //the table is built again twice as long as the new array.
+    private void addFriendId(int user, int friend) {
+        int count = friendCounts[user];
+
+        if (count == friends[user].length) {
+            friends[user] = Arrays.copyOf(friends[user], count * 2);
+
+            int[] bigger = newTable(count * 4);
+
+            for (int p = 0; p < count; p++) {
+                insert(bigger, friends[user], p);
+            }
+
+            tables[user] = bigger;
+        }
+
+        friends[user][count] = friend;
+        insert(tables[user], friends[user], count);
+        friendCounts[user]++;
+    }
+
+    //removes id friend from the friend array of id user by moving the last
+    //friend into its spot. Returns true if it was found. The freed table slot
+    //doesn't get a marker, instead the entries after it in the same probe
+    //sequence are moved back so lookups can keep stopping at the first empty
+    //slot.
+    private boolean removeFriendId(int user, int friend) {
+        int i = findSlot(user, friend);
+
+        if (i == -1) {
+            return false;
+        }
+
+        int[] list = friends[user];
+        int[] table = tables[user];
+        int mask = table.length - 1;
+        int position = table[i];
+        int last = friendCounts[user] - 1;
+
+        //moves the last friend into the freed position. Its slot has to be
+        //found before list[position] is changed, otherwise the lookup could
+        //stop at slot i which also points to that position
+        if (position != last) {
+            int moved = list[last];
+            int movedSlot = findSlot(user, moved);
+
+            list[position] = moved;
+            table[movedSlot] = position;
+        }
+
+        friendCounts[user]--;
+        table[i] = -1;
+
+        //moves back any following entry whose home slot is at or before the
+        //freed slot
+        for (int j = (i + 1) & mask; table[j] != -1; j = (j + 1) & mask) {
+            int home = slot(list[table[j]], mask);
+
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                table[i] = table[j];
+                table[j] = -1;
+                i = j;
+            }
+        }
+
+        return true;
+    }
+
+    //returns the slot of the table of id user that holds the position of id
+    //friend, or -1 if friend isn't one of the user's friends.
+    private int findSlot(int user, int friend) {
+        int[] list = friends[user];
+        int[] table = tables[user];
+        int mask = table.length - 1;
+
+        int i = slot(friend, mask);
+
+        //walks the probe sequence until it finds the id or an empty slot. The
+        //table always has empty slots, but a table seen while another thread
+        //fills it might not, so the walk stops after table.length slots
+        for (int n = 0; n < table.length && table[i] != -1; n++) {
+            if (list[table[i]] == friend) {
+                return i;
+            }
+
+            i = (i + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    //puts position p of the parameter friend array in the first empty slot of
+    //the probe sequence of the id stored there.
+    private static void insert(int[] table, int[] list, int p) {
+        int mask = table.length - 1;
+        int i = slot(list[p], mask);
+
+        while (table[i] != -1) {
+            i = (i + 1) & mask;
+        }
+
+        table[i] = p;
+    }
+
+    //returns the home slot of the parameter id. Multiplying by a large odd
+    //constant spreads ids that are close together over the whole table.
+    private static int slot(int id, int mask) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    //returns a new friend table of the parameter length with every slot empty.
+    private static int[] newTable(int length) {
+        int[] table = new int[length];
+        Arrays.fill(table, -1);
+        return table;
+    }
+
+    //arrays used by recommend(). A Scratch is only used by one task at a
+    //time and is reused for every user that task handles.
+    static class Scratch {
+
+        //number of mutual friends of each candidate, all 0 between users
+        private int[] counts;
+
+        //stamps[i] is the id of the current user + 1 if i is that user or one
+        //of his friends, so the array never has to be cleared
+        private int[] stamps;
+
+        //ids whose count is not 0
+        private int[] touched;
+
+        //best k candidates found so far
+        private int[] heap;
+
+        private Scratch(int size, int k) {
+            counts = new int[size];
+            stamps = new int[size];
+            touched = new int[size];
+            //there can't be more candidates than users
+            heap = new int[Math.min(k, size)];
+        }
+    }
+
+}